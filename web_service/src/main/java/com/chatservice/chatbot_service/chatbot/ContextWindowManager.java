@@ -0,0 +1,427 @@
+package com.chatservice.chatbot_service.chatbot;
+
+import com.chatservice.chatbot_service.exceptions.InvalidDataException;
+import com.chatservice.chatbot_service.exceptions.OpenAIException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/*context window manager wraps a chatbot connector and keeps the cost of each turn bounded. Threads grow with every message,
+and every run makes the assistant reprocess the whole thread. Once a thread passes the token budget, a fresh upstream thread is
+prepared in the background, seeded with a summary of the older messages and the last few turns, and the conversation moves to it
+on the next turn. Clients keep using the thread id they were originally given.
+
+the mapping from client thread ids to upstream threads is only kept in memory. After a server restart, a conversation that had
+already been moved refers to its original upstream thread again, which is missing every message sent since the first move.
+Conversations that were moved and later evicted from the tracked threads are remembered, and further calls on them fail.*/
+public class ContextWindowManager implements ChatbotConnector {
+	private static final long defaultTokenBudget = 8000; //used when chatbot.contextTokenBudget is not configured.
+	private static final int defaultKeptTurns = 4; //used when chatbot.contextKeptTurns is not configured.
+	private static final int defaultMaxThreads = 1000; //used when chatbot.contextMaxThreads is not configured.
+	private static final int evictedThreadsPerTrackedThread = 10; //how many evicted moved ids are remembered per tracked thread.
+	private static final int rolloverThreads = 2; //background threads used to prepare new upstream threads.
+	private static final int charactersPerToken = 4; //rough average for english text, close enough for a budget.
+	private static final String seedHeader = "This conversation is continued from an earlier thread. ";
+	private static final String summaryLabel = "Summary of the earlier conversation: ";
+	private static final String missingReply = "(no reply was received)";
+
+	private final ChatbotConnector chatbot; //connector that holds the actual (upstream) threads.
+	private final ModelConnector model; //connector used to summarize older messages when a thread is rolled over.
+	private final long tokenBudget; //approximate amount of tokens a thread may hold before it is rolled over.
+	private final int keptTurns; //maximum amount of recent turns copied word for word into the new thread.
+	private final Executor executor; //runs the summary and seeding of new threads off the request path.
+	private final Map<String, ThreadWindow> windows; //client thread id -> window state, least recently used entries are evicted.
+	private final Map<String, Boolean> evictedMovedThreads; //client ids of evicted conversations that were no longer on their original thread.
+
+	public ContextWindowManager(ChatbotConnector chatbot, ModelConnector model) {
+		this(chatbot, model,
+				ParsePositiveEnv("chatbot.contextTokenBudget", defaultTokenBudget, Long.MAX_VALUE),
+				(int)ParsePositiveEnv("chatbot.contextKeptTurns", defaultKeptTurns, Integer.MAX_VALUE),
+				(int)ParsePositiveEnv("chatbot.contextMaxThreads", defaultMaxThreads, Integer.MAX_VALUE),
+				Executors.newFixedThreadPool(rolloverThreads, runnable -> {
+					Thread thread = new Thread(runnable, "context-window-rollover");
+					thread.setDaemon(true);
+					return thread;
+				}));
+	}
+
+	ContextWindowManager(ChatbotConnector chatbot, ModelConnector model, long tokenBudget, int keptTurns, int maxThreads, Executor executor) {
+		this.chatbot = chatbot;
+		this.model = model;
+		this.tokenBudget = tokenBudget;
+		this.keptTurns = keptTurns;
+		this.executor = executor;
+		long maxEvictedThreads = (long)maxThreads * evictedThreadsPerTrackedThread;
+		this.evictedMovedThreads = new LinkedHashMap<String, Boolean>() {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > maxEvictedThreads;
+			}
+		};
+		this.windows = new LinkedHashMap<String, ThreadWindow>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ThreadWindow> eldest) {
+				if(size() <= maxThreads){
+					return false;
+				}
+				//a moved conversation can not be continued from its client id alone, remember it so it fails instead of answering wrong.
+				if(!eldest.getKey().equals(eldest.getValue().upstreamThreadId)){
+					evictedMovedThreads.put(eldest.getKey(), Boolean.TRUE);
+				}
+				return true;
+			}
+		};
+	}
+
+	//the upstream id of the first thread becomes the client's thread id for the rest of the conversation.
+	@Override
+	public String CreateThread() {
+		String threadId = chatbot.CreateThread();
+		synchronized (windows) {
+			windows.put(threadId, new ThreadWindow(threadId));
+		}
+		return threadId;
+	}
+
+	//context messages are kept separately from turns so they can be copied into every new thread.
+	@Override
+	public String AddContextToThread(String message, String threadId) {
+		ThreadWindow window = GetOrTrackWindow(threadId);
+		synchronized (window) {
+			String result = chatbot.AddContextToThread(message, window.upstreamThreadId);
+			window.context.add(message);
+			window.tokens += EstimateTokens(message);
+			return result;
+		}
+	}
+
+	/*switches to a prepared thread if one is ready, then prompts the current upstream thread. The message is counted and recorded
+	before the upstream call, because the connector posts it before the run starts and a timed out run still adds its reply.
+	once the reply is in, a new thread is prepared in the background if the current one is past the budget.*/
+	@Override
+	public String PromptThread(String message, String threadId) {
+		ThreadWindow window = GetOrTrackWindow(threadId);
+		synchronized (window) {
+			ApplyPreparedThread(window);
+
+			Turn turn = new Turn(UnescapeJson(message));
+			window.turns.add(turn);
+			window.tokens += EstimateTokens(message);
+			try {
+				String response = chatbot.PromptThread(message, window.upstreamThreadId);
+				turn.response = UnescapeJson(response);
+				window.tokens += EstimateTokens(response);
+				return response;
+			} finally {
+				PrepareThreadIfNeeded(window);
+			}
+		}
+	}
+
+	//untracked threads are passed through as-is, reading a thread should never start tracking it.
+	@Override
+	public String GetThreadResponse(String threadId) {
+		ThreadWindow window;
+		synchronized (windows) {
+			VerifyNotEvicted(threadId);
+			window = windows.get(threadId);
+		}
+		return chatbot.GetThreadResponse(window == null ? threadId : window.upstreamThreadId);
+	}
+
+	/*starts preparing a new upstream thread once the current one is past the budget. The new thread is seeded with the context
+	messages, a summary of the older turns and as many of the last keptTurns turns as fit, all within half of the budget.
+	a preparation (or a failed one) is only retried once half a budget of new tokens has been added since, so a conversation
+	that cannot be shrunk any further does not pay for one on every turn.*/
+	private void PrepareThreadIfNeeded(ThreadWindow window){
+		boolean overBudget = window.tokens > tokenBudget;
+		boolean grownSinceRollover = window.tokens - window.tokensAfterRollover > tokenBudget / 2;
+		if(window.pendingThread != null || !overBudget || !grownSinceRollover || window.turns.isEmpty()){
+			return;
+		}
+		long previousTokensAfterRollover = window.tokensAfterRollover;
+		window.tokensAfterRollover = window.tokens;
+
+		long limit = tokenBudget / 2;
+		long summaryReserve = limit / 4;
+		long contextTokens = 0;
+		for(String contextMessage : window.context){
+			contextTokens += EstimateTokens(contextMessage);
+		}
+
+		//keep the most recent turns that fit next to the context and the space reserved for the summary.
+		int splitIndex = Math.max(0, window.turns.size() - keptTurns);
+		List<Turn> recentTurns = new ArrayList<>(window.turns.subList(splitIndex, window.turns.size()));
+		while(!recentTurns.isEmpty() && contextTokens + EstimateTokens(BuildSeedMessage(null, recentTurns)) > limit - summaryReserve){
+			recentTurns.remove(0);
+			splitIndex++;
+		}
+		List<Turn> olderTurns = new ArrayList<>(window.turns.subList(0, splitIndex));
+
+		//the summary gets whatever room the context and recent turns left over.
+		long summaryTokens = limit - contextTokens - EstimateTokens(BuildSeedMessage(null, recentTurns)) - EstimateTokens(summaryLabel) - 1;
+		if(summaryTokens <= 0){
+			System.out.println("Context window rollover skipped: context messages do not fit within half of the token budget.");
+			return;
+		}
+
+		List<String> context = new ArrayList<>(window.context);
+		String previousSummary = window.summary;
+		int turnCount = window.turns.size();
+		long seedContextTokens = contextTokens;
+		window.pendingThread = CompletableFuture.supplyAsync(() -> {
+			PreparedThread prepared = PrepareThread(context, previousSummary, olderTurns, recentTurns, summaryTokens, seedContextTokens);
+			if(prepared != null){
+				prepared.turnCount = turnCount;
+				prepared.contextCount = context.size();
+				prepared.previousTokensAfterRollover = previousTokensAfterRollover;
+			}
+			return prepared;
+		}, executor);
+	}
+
+	//summarizes the older turns and seeds a new upstream thread. Returns null if either fails, the conversation then stays where it is.
+	private PreparedThread PrepareThread(List<String> context, String previousSummary, List<Turn> olderTurns, List<Turn> recentTurns, long summaryTokens, long contextTokens){
+		String summary = previousSummary;
+		if(!olderTurns.isEmpty()){
+			summary = Summarize(previousSummary, olderTurns);
+			if(summary == null){
+				return null;
+			}
+		}
+		summary = Truncate(summary, summaryTokens * charactersPerToken);
+
+		String seed = BuildSeedMessage(summary, recentTurns);
+		try {
+			String newThreadId = chatbot.CreateThread();
+			for(String contextMessage : context){
+				chatbot.AddContextToThread(contextMessage, newThreadId);
+			}
+			chatbot.AddContextToThread(EscapeJson(seed), newThreadId);
+			return new PreparedThread(newThreadId, summary, recentTurns, contextTokens + EstimateTokens(seed));
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/*moves the conversation to a prepared thread once it is ready, without waiting for it. A thread prepared before turns or
+	context messages were added is missing them, so it is dropped and a new one is prepared after this turn.*/
+	private void ApplyPreparedThread(ThreadWindow window){
+		if(window.pendingThread == null || !window.pendingThread.isDone()){
+			return;
+		}
+		PreparedThread prepared = window.pendingThread.getNow(null);
+		window.pendingThread = null;
+		if(prepared == null){
+			return;
+		}
+		if(prepared.turnCount != window.turns.size() || prepared.contextCount != window.context.size()){
+			System.out.println("Context window rollover discarded: messages were added while thread " + prepared.threadId + " was prepared.");
+			window.tokensAfterRollover = prepared.previousTokensAfterRollover;
+			return;
+		}
+
+		window.upstreamThreadId = prepared.threadId;
+		window.summary = prepared.summary;
+		window.turns = new ArrayList<>(prepared.recentTurns);
+		window.tokens = prepared.tokens;
+		window.tokensAfterRollover = prepared.tokens;
+	}
+
+	//asks the model for a short summary of the previous summary plus the turns being dropped. Returns null if the model fails.
+	//this goes through the response model, so rollovers also need openai.responseModel and openai.responseEndpoint configured.
+	private String Summarize(String previousSummary, List<Turn> turns){
+		StringBuilder prompt = new StringBuilder("Summarize the following conversation between a student and an advising assistant in a few sentences. ");
+		prompt.append("Keep names, courses, dates and any decisions that were made. ");
+		if(previousSummary != null){
+			prompt.append("Earlier summary: ").append(previousSummary).append(" ");
+		}
+		AppendTurns(prompt, turns);
+
+		try {
+			return UnescapeJson(model.Prompt(EscapeJson(prompt.toString())));
+		} catch (OpenAIException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	//builds the single context message that carries the conversation into a new thread.
+	private String BuildSeedMessage(String summary, List<Turn> recentTurns){
+		StringBuilder seed = new StringBuilder(seedHeader);
+		if(summary != null){
+			seed.append(summaryLabel).append(summary).append(" ");
+		}
+		if(!recentTurns.isEmpty()){
+			seed.append("Most recent messages: ");
+			AppendTurns(seed, recentTurns);
+		}
+		return seed.toString().trim();
+	}
+
+	private void AppendTurns(StringBuilder builder, List<Turn> turns){
+		for(Turn turn : turns){
+			builder.append("Student: ").append(turn.message).append(" Assistant: ").append(turn.response).append(" ");
+		}
+	}
+
+	//returns the window of a thread, starting to track it if needed. Only used for calls that write to the thread.
+	private ThreadWindow GetOrTrackWindow(String threadId){
+		synchronized (windows) {
+			VerifyNotEvicted(threadId);
+			return windows.computeIfAbsent(threadId, ThreadWindow::new);
+		}
+	}
+
+	//throws an error for conversations that were moved and then evicted, their client id no longer leads to the full conversation.
+	private void VerifyNotEvicted(String threadId){
+		if(evictedMovedThreads.containsKey(threadId)){
+			throw new InvalidDataException("Thread " + threadId + " is no longer available, please start a new thread.");
+		}
+	}
+
+	private long EstimateTokens(String text){
+		if(text == null){
+			return 0;
+		}
+		return (text.length() + charactersPerToken - 1) / charactersPerToken;
+	}
+
+	private String Truncate(String text, long maxCharacters){
+		if(text == null || text.length() <= maxCharacters){
+			return text;
+		}
+		return text.substring(0, (int)maxCharacters);
+	}
+
+	/*messages and replies arrive as json string content, partly unescaped by the connector. Decode any escapes that remain so
+	stored turns hold plain text. Unknown or incomplete escapes are kept as they are.*/
+	static String UnescapeJson(String text){
+		if(text == null){
+			return null;
+		}
+		StringBuilder output = new StringBuilder(text.length());
+		for(int i = 0; i < text.length(); i++){
+			char currentChar = text.charAt(i);
+			if(currentChar != '\\' || i + 1 >= text.length()){
+				output.append(currentChar);
+				continue;
+			}
+
+			char escaped = text.charAt(i + 1);
+			switch(escaped){
+				case 'n': output.append('\n'); i++; break;
+				case 't': output.append('\t'); i++; break;
+				case 'r': output.append('\r'); i++; break;
+				case 'b': output.append('\b'); i++; break;
+				case 'f': output.append('\f'); i++; break;
+				case '"': output.append('"'); i++; break;
+				case '/': output.append('/'); i++; break;
+				case '\\': output.append('\\'); i++; break;
+				case 'u':
+					if(i + 6 <= text.length()){
+						try{
+							output.append((char)Integer.parseInt(text.substring(i + 2, i + 6), 16));
+							i += 5;
+							break;
+						}catch(NumberFormatException e){
+							//not a valid unicode escape, keep it as text.
+						}
+					}
+					output.append(currentChar);
+					break;
+				default: output.append(currentChar);
+			}
+		}
+		return output.toString();
+	}
+
+	//the connector places messages into json as-is, so text copied from earlier turns must be escaped first.
+	static String EscapeJson(String text){
+		if(text == null){
+			return null;
+		}
+		StringBuilder output = new StringBuilder(text.length());
+		for(int i = 0; i < text.length(); i++){
+			char currentChar = text.charAt(i);
+			switch(currentChar){
+				case '"': output.append("\\\""); break;
+				case '\\': output.append("\\\\"); break;
+				case '\n': output.append("\\n"); break;
+				case '\r': output.append("\\r"); break;
+				case '\t': output.append("\\t"); break;
+				default:
+					if(currentChar < 0x20){
+						output.append(String.format("\\u%04x", (int)currentChar));
+					}else{
+						output.append(currentChar);
+					}
+			}
+		}
+		return output.toString();
+	}
+
+	//reads a whole, positive number up to maxValue from an environment variable, falling back to the default when missing or invalid.
+	private static long ParsePositiveEnv(String name, long defaultValue, long maxValue){
+		String value = System.getenv(name);
+		if(value == null || value.isEmpty()){
+			return defaultValue;
+		}
+		try{
+			long parsed = Long.parseLong(value);
+			return parsed > 0 && parsed <= maxValue ? parsed : defaultValue;
+		}catch(NumberFormatException e){
+			e.printStackTrace();
+			return defaultValue;
+		}
+	}
+
+	//state of a single client conversation, guarded by its own lock.
+	private static class ThreadWindow {
+		private volatile String upstreamThreadId; //thread currently holding the conversation, also read without the lock.
+		private String summary; //summary of every turn dropped so far, null until the first rollover.
+		private List<Turn> turns = new ArrayList<>(); //turns on the current upstream thread, as plain text.
+		private final List<String> context = new ArrayList<>(); //context messages as sent, copied to every new thread.
+		private long tokens; //approximate tokens on the current upstream thread.
+		private long tokensAfterRollover; //tokens right after the last rollover or rollover attempt.
+		private CompletableFuture<PreparedThread> pendingThread; //new thread being prepared in the background, null if none.
+
+		private ThreadWindow(String upstreamThreadId){
+			this.upstreamThreadId = upstreamThreadId;
+		}
+	}
+
+	//a new upstream thread that has been seeded and is ready to take over the conversation.
+	private static class PreparedThread {
+		private final String threadId;
+		private final String summary;
+		private final List<Turn> recentTurns; //turns copied into the seed, they become the turns of the new thread.
+		private final long tokens; //approximate tokens seeded into the new thread.
+		private int turnCount; //amount of turns in the conversation when preparation started.
+		private int contextCount; //amount of context messages when preparation started.
+		private long previousTokensAfterRollover; //restored if the prepared thread is discarded.
+
+		private PreparedThread(String threadId, String summary, List<Turn> recentTurns, long tokens){
+			this.threadId = threadId;
+			this.summary = summary;
+			this.recentTurns = recentTurns;
+			this.tokens = tokens;
+		}
+	}
+
+	//a user message and the assistant's reply to it. The reply stays a placeholder if none was received.
+	private static class Turn {
+		private final String message;
+		private String response = missingReply;
+
+		private Turn(String message){
+			this.message = message;
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package com.chatservice.chatbot_service.controller;
 
 import com.chatservice.chatbot_service.chatbot.ChatbotConnector;
+import com.chatservice.chatbot_service.chatbot.ContextWindowManager;
 import com.chatservice.chatbot_service.chatbot.OpenaiConnector;
 import com.chatservice.chatbot_service.chatbot.ModelConnector;
 import com.chatservice.chatbot_service.constants.AppConstants;
@@ -54,6 +55,6 @@ public class Controller {
 
     public Controller(){
         model = new OpenaiConnector();
-        chatbot = (OpenaiConnector)model;
+        chatbot = new ContextWindowManager((OpenaiConnector)model, model); //keeps long conversations within a token budget.
     }
 }
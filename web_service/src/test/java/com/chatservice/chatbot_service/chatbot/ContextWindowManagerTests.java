@@ -0,0 +1,267 @@
+package com.chatservice.chatbot_service.chatbot;
+
+import com.chatservice.chatbot_service.exceptions.InvalidDataException;
+import com.chatservice.chatbot_service.exceptions.OpenAIGenericException;
+import com.chatservice.chatbot_service.exceptions.OpenAITimeoutException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContextWindowManagerTests {
+
+	//fake connector that records calls instead of contacting openai. Replies have a fixed length so token counts are predictable.
+	private static class FakeConnector implements ChatbotConnector, ModelConnector {
+		private final List<String> createdThreads = new ArrayList<>();
+		private final List<String> contextMessages = new ArrayList<>(); //"threadId: message"
+		private final List<String> promptedThreads = new ArrayList<>();
+		private final List<String> summaryPrompts = new ArrayList<>();
+		private final int replyLength;
+		private boolean summaryFails = false;
+		private boolean promptFails = false; //prompts time out after the message was posted.
+		private boolean seedFails = false; //adding context fails on every thread except the first.
+
+		private FakeConnector(int replyLength){
+			this.replyLength = replyLength;
+		}
+
+		@Override
+		public String CreateThread() {
+			String threadId = "thread_" + createdThreads.size();
+			createdThreads.add(threadId);
+			return threadId;
+		}
+
+		@Override
+		public String AddContextToThread(String message, String threadId) {
+			if(seedFails && !threadId.equals("thread_0")){
+				throw new OpenAIGenericException("Failed to add context to OpenAI thread.");
+			}
+			contextMessages.add(threadId + ": " + message);
+			return "Context added successfully.";
+		}
+
+		@Override
+		public String PromptThread(String message, String threadId) {
+			promptedThreads.add(threadId);
+			if(promptFails){
+				throw new OpenAITimeoutException("Assistant run timed out.");
+			}
+			String reply = "reply to " + message + " ";
+			return reply + "x".repeat(Math.max(0, replyLength - reply.length()));
+		}
+
+		@Override
+		public String GetThreadResponse(String threadId) {
+			return "latest on " + threadId;
+		}
+
+		@Override
+		public String Prompt(String prompt) {
+			summaryPrompts.add(prompt);
+			if(summaryFails){
+				throw new OpenAIGenericException("OpenAI response model not configured on server.");
+			}
+			return "summary";
+		}
+	}
+
+	@Test
+	void noRolloverWhileUnderBudget() {
+		FakeConnector fake = new FakeConnector(100);
+		ContextWindowManager manager = new ContextWindowManager(fake, fake, 8000, 4, 10, Runnable::run);
+
+		String threadId = manager.CreateThread();
+		manager.AddContextToThread("This conversation started at date 1/1/2026, time 10:00", threadId);
+		for(int i = 0; i < 20; i++){
+			manager.PromptThread("message " + i, threadId);
+		}
+
+		assertEquals(1, fake.createdThreads.size());
+		assertTrue(fake.summaryPrompts.isEmpty());
+		assertTrue(fake.promptedThreads.stream().allMatch(threadId::equals));
+	}
+
+	@Test
+	void rolloverKeepsLastTurnsAndMapsToNewThread() {
+		FakeConnector fake = new FakeConnector(400); //100 tokens per reply
+		ContextWindowManager manager = new ContextWindowManager(fake, fake, 1000, 2, 10, Runnable::run);
+
+		String threadId = manager.CreateThread();
+		manager.AddContextToThread("started at 10:00", threadId);
+		for(int i = 0; i < 12; i++){
+			manager.PromptThread("message " + i, threadId);
+		}
+
+		assertEquals(2, fake.createdThreads.size());
+		String newThreadId = fake.createdThreads.get(1);
+		assertEquals(1, fake.summaryPrompts.size());
+
+		//the new thread is seeded with the context message, then the summary and exactly the last two turns.
+		List<String> seeded = fake.contextMessages.stream().filter(m -> m.startsWith(newThreadId + ": ")).toList();
+		assertEquals(2, seeded.size());
+		assertEquals(newThreadId + ": started at 10:00", seeded.get(0));
+		String seed = seeded.get(1);
+		assertTrue(seed.contains("summary"));
+		assertEquals(2, seed.split("Student: ", -1).length - 1);
+		int rolledOverAt = fake.promptedThreads.indexOf(newThreadId);
+		assertTrue(seed.contains("Student: message " + (rolledOverAt - 1) + " "));
+		assertTrue(seed.contains("Student: message " + (rolledOverAt - 2) + " "));
+
+		//the client keeps its thread id, calls go to the new upstream thread.
+		assertEquals(newThreadId, fake.promptedThreads.get(fake.promptedThreads.size() - 1));
+		assertEquals("latest on " + newThreadId, manager.GetThreadResponse(threadId));
+	}
+
+	@Test
+	void largeTurnsDoNotRollOverEveryTurn() {
+		FakeConnector fake = new FakeConnector(9000); //2250 tokens per reply, more than the default budget holds in kept turns
+		ContextWindowManager manager = new ContextWindowManager(fake, fake, 8000, 4, 10, Runnable::run);
+
+		String threadId = manager.CreateThread();
+		manager.AddContextToThread("started at 10:00", threadId);
+		int turns = 20;
+		for(int i = 0; i < turns; i++){
+			manager.PromptThread("message " + i, threadId);
+		}
+
+		//every rollover needs at least half a budget of new tokens, which is two replies here.
+		int rollovers = fake.createdThreads.size() - 1;
+		assertTrue(rollovers > 0);
+		assertTrue(rollovers <= turns / 2, "rolled over " + rollovers + " times in " + turns + " turns");
+
+		//everything seeded into a new thread fits within half of the budget.
+		for(String createdThread : fake.createdThreads.subList(1, fake.createdThreads.size())){
+			int seededCharacters = fake.contextMessages.stream()
+					.filter(m -> m.startsWith(createdThread + ": "))
+					.mapToInt(m -> m.length() - createdThread.length() - 2)
+					.sum();
+			assertTrue(seededCharacters <= 4000 * 4, "seeded " + seededCharacters + " characters into " + createdThread);
+		}
+	}
+
+	@Test
+	void failedSummaryKeepsConversationOnCurrentThread() {
+		FakeConnector fake = new FakeConnector(400);
+		fake.summaryFails = true;
+		ContextWindowManager manager = new ContextWindowManager(fake, fake, 1000, 2, 10, Runnable::run);
+
+		String threadId = manager.CreateThread();
+		for(int i = 0; i < 12; i++){
+			manager.PromptThread("message " + i, threadId);
+		}
+
+		//no turns are dropped: no new thread is made and every prompt still goes to the original thread.
+		assertEquals(1, fake.createdThreads.size());
+		assertTrue(fake.promptedThreads.stream().allMatch(threadId::equals));
+		//a failed attempt waits for half a budget of new tokens before trying again.
+		assertTrue(fake.summaryPrompts.size() < 12 / 2);
+		assertFalse(fake.summaryPrompts.isEmpty());
+	}
+
+	@Test
+	void failedSeedingKeepsConversationOnCurrentThread() {
+		FakeConnector fake = new FakeConnector(400);
+		fake.seedFails = true;
+		ContextWindowManager manager = new ContextWindowManager(fake, fake, 1000, 2, 10, Runnable::run);
+
+		String threadId = manager.CreateThread();
+		manager.AddContextToThread("started at 10:00", threadId);
+		for(int i = 0; i < 12; i++){
+			assertTrue(manager.PromptThread("message " + i, threadId).startsWith("reply to message " + i));
+		}
+
+		//a new thread was attempted, but every prompt still reached the original thread.
+		assertTrue(fake.createdThreads.size() > 1);
+		assertEquals(12, fake.promptedThreads.size());
+		assertTrue(fake.promptedThreads.stream().allMatch(threadId::equals));
+	}
+
+	@Test
+	void failedPromptsAreStillCounted() {
+		FakeConnector fake = new FakeConnector(100);
+		fake.promptFails = true;
+		ContextWindowManager manager = new ContextWindowManager(fake, fake, 1000, 2, 10, Runnable::run);
+
+		String threadId = manager.CreateThread();
+		String longMessage = "question ".repeat(50); //about 113 tokens
+		for(int i = 0; i < 12; i++){
+			String message = longMessage + i;
+			assertThrows(OpenAITimeoutException.class, () -> manager.PromptThread(message, threadId));
+		}
+
+		//the timed out messages still filled the thread, so it was moved, and the missing replies are marked in the seed.
+		assertEquals(2, fake.createdThreads.size());
+		assertTrue(fake.promptedThreads.contains("thread_1"));
+		String seed = fake.contextMessages.get(fake.contextMessages.size() - 1);
+		assertTrue(seed.contains("Assistant: (no reply was received)"));
+	}
+
+	@Test
+	void preparedThreadIsUsedOnceReady() {
+		FakeConnector fake = new FakeConnector(400);
+		List<Runnable> tasks = new ArrayList<>();
+		ContextWindowManager manager = new ContextWindowManager(fake, fake, 1000, 2, 10, tasks::add);
+
+		String threadId = manager.CreateThread();
+		for(int i = 0; i < 10; i++){
+			manager.PromptThread("message " + i, threadId);
+		}
+		assertEquals(1, tasks.size());
+
+		//while the new thread is being prepared, prompts keep going to the current thread without waiting.
+		manager.PromptThread("message 10", threadId);
+		assertEquals(1, fake.createdThreads.size());
+		assertTrue(fake.promptedThreads.stream().allMatch(threadId::equals));
+
+		//the thread prepared before that turn is missing it, so it is discarded and prepared again.
+		tasks.remove(0).run();
+		manager.PromptThread("message 11", threadId);
+		assertEquals(threadId, fake.promptedThreads.get(fake.promptedThreads.size() - 1));
+		assertEquals(1, tasks.size());
+
+		tasks.remove(0).run();
+		manager.PromptThread("message 12", threadId);
+		String newThreadId = fake.createdThreads.get(fake.createdThreads.size() - 1);
+		assertEquals(newThreadId, fake.promptedThreads.get(fake.promptedThreads.size() - 1));
+		assertTrue(fake.contextMessages.get(fake.contextMessages.size() - 1).contains("Student: message 11 "));
+	}
+
+	@Test
+	void evictedMovedThreadsFail() {
+		FakeConnector fake = new FakeConnector(400);
+		ContextWindowManager manager = new ContextWindowManager(fake, fake, 1000, 2, 2, Runnable::run);
+
+		String movedThreadId = manager.CreateThread();
+		for(int i = 0; i < 12; i++){
+			manager.PromptThread("message " + i, movedThreadId);
+		}
+		String stayedThreadId = manager.CreateThread();
+		manager.PromptThread("message", stayedThreadId);
+
+		//two more conversations push both earlier ones out of the tracked threads.
+		manager.CreateThread();
+		manager.CreateThread();
+
+		assertThrows(InvalidDataException.class, () -> manager.PromptThread("message", movedThreadId));
+		assertThrows(InvalidDataException.class, () -> manager.GetThreadResponse(movedThreadId));
+		assertEquals("latest on " + stayedThreadId, manager.GetThreadResponse(stayedThreadId));
+	}
+
+	@Test
+	void untrackedThreadsArePassedThrough() {
+		FakeConnector fake = new FakeConnector(100);
+		ContextWindowManager manager = new ContextWindowManager(fake, fake, 8000, 4, 10, Runnable::run);
+
+		assertEquals("latest on thread_unknown", manager.GetThreadResponse("thread_unknown"));
+	}
+
+	@Test
+	void copiedTextIsEscapedForJson() {
+		String reply = ContextWindowManager.UnescapeJson("It\\u2019s\ta \"quote\"\\\\ and\nnewline");
+		assertEquals("It’s\ta \"quote\"\\ and\nnewline", reply);
+		assertEquals("It’s\\ta \\\"quote\\\"\\\\ and\\nnewline", ContextWindowManager.EscapeJson(reply));
+	}
+}